@@ -0,0 +1,174 @@
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * This class keeps a per-thread pool of direct ByteBuffers so that bulk
+ * cipher operations reuse their working and output buffers instead of
+ * allocating new ones, and new garbage, for every message.
+ * <p>
+ * Buffers are pooled by capacity rounded up to a power of two. Every buffer
+ * from acquire() must be handed back with release(), on the thread that
+ * acquired it, once the caller is done with it, and must not be used after
+ * that. Each thread tracks which of its buffers are checked out, so releasing
+ * a buffer twice, or one it never handed out, throws instead of letting two
+ * callers share a buffer. The tracking holds buffers only weakly, so a buffer
+ * that is never released is still garbage collected.
+ */
+final class BufferPool {
+
+    static final int MIN_CAPACITY = 64; // smallest buffer handed out
+    static final int MAX_CAPACITY = 1 << 30;
+    static final int MAX_POOLED = 16; // free buffers kept per size per thread
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CAPACITY);
+
+    private static final ThreadLocal<Pool> POOLS = ThreadLocal.withInitial(Pool::new);
+
+    private BufferPool() {
+    }
+
+    /**
+     * Returns a cleared direct buffer whose limit is the requested capacity.
+     *
+     * @param capacity the number of bytes needed
+     * @return         a buffer that must be given back with release()
+     */
+    static ByteBuffer acquire(int capacity) {
+        if (capacity < 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Cannot pool a buffer of " + capacity + " bytes");
+        }
+        Pool pool = POOLS.get();
+        int shift = shift(capacity);
+        ByteBuffer buffer = pool.free(shift).pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << shift);
+            pool.track(buffer);
+        }
+        pool.checked_out[pool.find(buffer)] = true;
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer from acquire() back to the calling thread's pool.
+     *
+     * @throws IllegalArgumentException if the buffer is not checked out on
+     *                                  this thread, because it was already
+     *                                  released or never came from acquire()
+     *                                  here
+     */
+    static void release(ByteBuffer buffer) {
+        Pool pool = POOLS.get();
+        int slot = pool.find(buffer);
+        if (slot < 0 || !pool.checked_out[slot]) {
+            throw new IllegalArgumentException("Buffer is not checked out of BufferPool on this thread");
+        }
+        pool.checked_out[slot] = false;
+        ArrayDeque<ByteBuffer> free = pool.free(shift(buffer.capacity()));
+        if (free.size() < MAX_POOLED) { // otherwise left for the GC
+            free.addFirst(buffer); // most recently used first, while it is in cache
+        }
+    }
+
+    /**
+     * Returns log2 of the pooled capacity that fits the given number of bytes.
+     */
+    private static int shift(int capacity) {
+        if (capacity <= MIN_CAPACITY) return MIN_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    /**
+     * One thread's free buffers, and every buffer it has allocated in an
+     * open-addressed table keyed by identity, since ByteBuffer.equals()
+     * compares contents. The table holds weak references, so only the free
+     * lists keep buffers alive. Entries whose buffer has been collected are
+     * reused by track() and dropped when the table grows.
+     */
+    private static final class Pool {
+        private static final int MIN_TABLE = 64;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ArrayDeque<ByteBuffer>[] free = new ArrayDeque[31]; // index is log2 of capacity
+
+        private WeakReference<ByteBuffer>[] buffers = newTable(MIN_TABLE);
+        private boolean[] checked_out = new boolean[MIN_TABLE];
+        private int used = 0; // non-null entries, live or collected
+
+        ArrayDeque<ByteBuffer> free(int shift) {
+            if (free[shift] == null) {
+                free[shift] = new ArrayDeque<>(MAX_POOLED);
+            }
+            return free[shift];
+        }
+
+        /**
+         * Returns the slot of the given buffer, or -1 if this thread never
+         * allocated it.
+         */
+        int find(ByteBuffer buffer) {
+            int mask = buffers.length - 1;
+            for (int i = hash(buffer) & mask; buffers[i] != null; i = (i + 1) & mask) {
+                if (buffers[i].get() == buffer) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a newly allocated buffer to the table, not checked out.
+         */
+        void track(ByteBuffer buffer) {
+            if (2 * (used + 1) > buffers.length) {
+                rehash();
+            }
+            int mask = buffers.length - 1;
+            int i = hash(buffer) & mask;
+            while (buffers[i] != null && buffers[i].get() != null) {
+                i = (i + 1) & mask;
+            }
+            if (buffers[i] == null) used++;
+            buffers[i] = new WeakReference<>(buffer);
+            checked_out[i] = false;
+        }
+
+        /**
+         * Rebuilds the table without collected entries, at least twice as
+         * large as the live ones need.
+         */
+        private void rehash() {
+            WeakReference<ByteBuffer>[] old = buffers;
+            boolean[] old_checked_out = checked_out;
+            int live = 0;
+            for (WeakReference<ByteBuffer> ref : old) {
+                if (ref != null && ref.get() != null) live++;
+            }
+            int size = MIN_TABLE;
+            while (size < 4 * (live + 1)) size <<= 1;
+
+            buffers = newTable(size);
+            checked_out = new boolean[size];
+            used = 0;
+            int mask = size - 1;
+            for (int j = 0; j < old.length; j++) {
+                ByteBuffer buffer = old[j] == null ? null : old[j].get();
+                if (buffer == null) continue;
+                int i = hash(buffer) & mask;
+                while (buffers[i] != null) i = (i + 1) & mask;
+                buffers[i] = old[j];
+                checked_out[i] = old_checked_out[j];
+                used++;
+            }
+        }
+
+        private static int hash(ByteBuffer buffer) {
+            int h = System.identityHashCode(buffer);
+            return h ^ (h >>> 16);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static WeakReference<ByteBuffer>[] newTable(int size) {
+            return new WeakReference[size];
+        }
+    }
+}
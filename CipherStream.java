@@ -0,0 +1,429 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class streams data through a DES block cipher mode one 64-bit block
+ * at a time, so input of any length can be processed in fixed-size buffers.
+ * <p>
+ * update() consumes all remaining bytes of its input buffer and writes every
+ * block it can finish; a trailing partial block is held until more input
+ * arrives or doFinal() is called. The output buffer must have room for the
+ * input plus two blocks.
+ * <p>
+ * A stream owns all of its working arrays, so once created it allocates
+ * nothing per block or per message. process() runs a whole message through
+ * pooled buffers from BufferPool. Each message uses up the IV of CBC, CBC-CS3
+ * and CTR streams: the chain or counter is cleared when the message ends, and
+ * reset(byte[]) must be given a fresh IV before the next one. Reusing an IV
+ * would repeat the CTR keystream and reveal equal CBC prefixes.
+ */
+abstract class CipherStream {
+
+    static final int BLOCK_SIZE = 8; // bytes in a 64-bit DES block
+
+    protected final int[][] kn; // per-round keys, reversed when decrypting
+    protected final boolean encrypt;
+    protected final Crypto.Engine engine;
+    protected final boolean has_iv; // false for ECB
+    private boolean iv_used = false; // set when a message has ended
+    private boolean destroyed = false;
+
+    protected final byte[] buffer = new byte[BLOCK_SIZE]; // pending input
+    protected int buffered = 0;
+
+    private final int[] bits = new int[64]; // the block des() is working on
+
+    /**
+     * Creates a stream for the named mode.
+     *
+     * @param mode    "ecb", "cbc", "cbc-cs3" or "ctr"
+     * @param encrypt true to encrypt, false to decrypt
+     * @param key     the 64-bit key in binary
+     * @param iv      the 64-bit IV in binary; ignored by ECB
+     * @return        a stream ready for update()
+     */
+    static CipherStream getInstance(String mode, boolean encrypt, int[] key, int[] iv) {
+        return getInstance(mode, encrypt, key, iv, Crypto.Engine.TABLE);
+    }
+
+    /**
+     * Creates a stream for the named mode that runs DES with the given
+     * S-box engine.
+     */
+    static CipherStream getInstance(String mode, boolean encrypt, int[] key, int[] iv,
+                                    Crypto.Engine engine) {
+        if (!isMode(mode)) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if (key.length != 64) {
+            throw new IllegalArgumentException("Key must be 64 bits");
+        }
+        switch (mode) {
+            case "ecb": return new ECB(encrypt, key, engine);
+            case "cbc": return new CBC(encrypt, key, requireIV(mode, iv), engine);
+            case "cbc-cs3": return new CBCCS3(encrypt, key, requireIV(mode, iv), engine);
+            case "ctr": return new CTR(key, requireIV(mode, iv), engine);
+            default: throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    /**
+     * Returns true if getInstance() knows the named mode.
+     */
+    static boolean isMode(String mode) {
+        switch (mode) {
+            case "ecb": case "cbc": case "cbc-cs3": case "ctr": return true;
+            default: return false;
+        }
+    }
+
+    private static int[] requireIV(String mode, int[] iv) {
+        if (iv == null || iv.length != 64) {
+            throw new IllegalArgumentException("IV must be 64 bits for " + mode);
+        }
+        return iv;
+    }
+
+    protected CipherStream(boolean encrypt, int[] key, int[] iv, Crypto.Engine engine) {
+        int[][] kn = Crypto.generatePerRoundKeys(key);
+        this.kn = encrypt ? kn : Crypto.reversePerRoundKeys(kn);
+        this.encrypt = encrypt;
+        this.engine = engine;
+        this.has_iv = iv != null;
+    }
+
+    /**
+     * Processes every complete block available from in, writing the result
+     * to out.
+     */
+    void update(ByteBuffer in, ByteBuffer out) {
+        checkIV();
+        while (in.hasRemaining()) {
+            int n = Math.min(BLOCK_SIZE - buffered, in.remaining());
+            in.get(buffer, buffered, n);
+            buffered += n;
+            if (buffered == BLOCK_SIZE) {
+                processBlock(buffer, out);
+                buffered = 0;
+            }
+        }
+    }
+
+    /**
+     * Processes the rest of in and any held-back bytes, then ends the
+     * message with reset().
+     */
+    void doFinal(ByteBuffer in, ByteBuffer out) {
+        update(in, out);
+        finish(out);
+        reset();
+    }
+
+    /**
+     * Writes whatever input is still held back once the message is complete.
+     */
+    protected void finish(ByteBuffer out) {
+        if (buffered > 0) {
+            processFinalBlock(buffer, buffered, out);
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Drops any held-back input. For modes with an IV this also clears the
+     * chain or counter, and reset(byte[]) must supply a fresh IV before the
+     * stream is used again.
+     */
+    void reset() {
+        buffered = 0;
+        if (has_iv) {
+            clearIV();
+            iv_used = true;
+        }
+    }
+
+    /**
+     * Drops any held-back input and starts the next message under the same
+     * key from a new IV, which must never have been used with this key.
+     *
+     * @param iv the new 8-byte IV
+     */
+    void reset(byte[] iv) {
+        if (!has_iv) {
+            throw new IllegalStateException("Mode has no IV");
+        }
+        if (iv.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("IV must be " + BLOCK_SIZE + " bytes");
+        }
+        reset();
+        loadIV(iv);
+        iv_used = false;
+    }
+
+    /**
+     * Zeroes the per-round keys and drops any held-back input. The stream
+     * cannot be used after this.
+     */
+    void destroy() {
+        reset();
+        for (int[] k : kn) {
+            Arrays.fill(k, 0);
+        }
+        Arrays.fill(buffer, (byte) 0);
+        Arrays.fill(bits, 0);
+        destroyed = true;
+    }
+
+    /**
+     * Throws unless the stream has an unused IV for the current message.
+     */
+    protected void checkIV() {
+        if (destroyed) {
+            throw new IllegalStateException("Stream has been destroyed");
+        }
+        if (iv_used) {
+            throw new IllegalStateException("IV already used; call reset(iv) with a fresh IV");
+        }
+    }
+
+    /**
+     * Starts the chain or counter from iv; only called for modes with an IV.
+     */
+    protected void loadIV(byte[] iv) {
+    }
+
+    /**
+     * Clears the chain or counter so a used IV cannot carry on into the next
+     * message; only called for modes with an IV.
+     */
+    protected void clearIV() {
+    }
+
+    /**
+     * Runs a whole message through the stream and ends it with reset(), so
+     * for modes with an IV, reset(byte[]) must be given a fresh IV before
+     * the next call. The result is in a buffer from BufferPool, flipped for
+     * reading, which the caller must release.
+     *
+     * @param in the whole message
+     * @return   a pooled buffer holding the result
+     */
+    ByteBuffer process(ByteBuffer in) {
+        ByteBuffer out = BufferPool.acquire(in.remaining() + 2*BLOCK_SIZE);
+        try {
+            doFinal(in, out);
+        } catch (RuntimeException e) {
+            BufferPool.release(out);
+            throw e;
+        } finally {
+            reset();
+        }
+        return out.flip();
+    }
+
+    /**
+     * Runs one 64-bit block through DES with this stream's per-round keys.
+     * src and dst may be the same array.
+     */
+    protected void des(byte[] src, byte[] dst) {
+        Crypto.bytes_to_binary(src, bits);
+        Crypto.encodeData(bits, bits, kn, engine);
+        Crypto.binary_to_bytes(bits, dst);
+    }
+
+    protected abstract void processBlock(byte[] block, ByteBuffer out);
+
+    /**
+     * Handles a final block shorter than 64 bits. By default the block is
+     * zero padded, the same as Crypto.ECB() and Crypto.CBC().
+     */
+    protected void processFinalBlock(byte[] block, int length, ByteBuffer out) {
+        if (!encrypt) {
+            throw new IllegalArgumentException("Ciphertext is not a multiple of 64 bits");
+        }
+        for (int i = length; i < BLOCK_SIZE; i++) {
+            block[i] = 0; // padding
+        }
+        processBlock(block, out);
+    }
+
+    /**
+     * ECB: each block is put through DES on its own.
+     */
+    static class ECB extends CipherStream {
+        ECB(boolean encrypt, int[] key, Crypto.Engine engine) {
+            super(encrypt, key, null, engine);
+        }
+
+        protected void processBlock(byte[] block, ByteBuffer out) {
+            des(block, block);
+            out.put(block);
+        }
+    }
+
+    /**
+     * CBC: each plaintext block is XORed with the previous ciphertext block,
+     * starting from the IV, before it is put through DES.
+     */
+    static class CBC extends CipherStream {
+        protected final byte[] chain = new byte[BLOCK_SIZE]; // previous ciphertext block
+        protected final byte[] scratch = new byte[BLOCK_SIZE];
+
+        CBC(boolean encrypt, int[] key, int[] iv, Crypto.Engine engine) {
+            super(encrypt, key, iv, engine);
+            Crypto.binary_to_bytes(iv, chain);
+        }
+
+        protected void loadIV(byte[] iv) {
+            System.arraycopy(iv, 0, chain, 0, BLOCK_SIZE);
+        }
+
+        protected void clearIV() {
+            Arrays.fill(chain, (byte) 0);
+        }
+
+        protected void processBlock(byte[] block, ByteBuffer out) {
+            if (encrypt) {
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    block[i] ^= chain[i];
+                }
+                des(block, chain);
+                out.put(chain);
+            } else {
+                des(block, scratch);
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    scratch[i] ^= chain[i];
+                }
+                System.arraycopy(block, 0, chain, 0, BLOCK_SIZE);
+                out.put(scratch);
+            }
+        }
+    }
+
+    /**
+     * CBC-CS3: CBC with ciphertext stealing as in the NIST SP 800-38A
+     * addendum. The ciphertext is exactly as long as the plaintext, which
+     * must be at least 64 bits.
+     * <p>
+     * All blocks but the last two are ordinary CBC. The last partial
+     * plaintext block Pn* of d bytes is zero padded and chained from Cn-1 to
+     * give Cn; Cn is then written before the first d bytes of Cn-1, which is
+     * all of Cn-1 that decryption cannot rebuild from Cn. CS3 swaps the last
+     * two blocks even when Pn* is complete. Only the last two blocks of input
+     * are held back until doFinal().
+     */
+    static class CBCCS3 extends CBC {
+        private final byte[] pending = new byte[2*BLOCK_SIZE];
+        private int held = 0;
+        private final byte[] cn_1 = new byte[BLOCK_SIZE];
+        private final byte[] z = new byte[BLOCK_SIZE];
+
+        CBCCS3(boolean encrypt, int[] key, int[] iv, Crypto.Engine engine) {
+            super(encrypt, key, iv, engine);
+        }
+
+        void reset() {
+            super.reset();
+            held = 0;
+        }
+
+        void update(ByteBuffer in, ByteBuffer out) {
+            checkIV();
+            while (in.hasRemaining()) {
+                if (held == pending.length) { // first held block is not one of the last two
+                    System.arraycopy(pending, 0, buffer, 0, BLOCK_SIZE);
+                    processBlock(buffer, out);
+                    System.arraycopy(pending, BLOCK_SIZE, pending, 0, BLOCK_SIZE);
+                    held = BLOCK_SIZE;
+                }
+                int n = Math.min(pending.length - held, in.remaining());
+                in.get(pending, held, n);
+                held += n;
+            }
+        }
+
+        protected void finish(ByteBuffer out) {
+            if (held < BLOCK_SIZE) {
+                throw new IllegalArgumentException("CBC-CS3 needs at least 64 bits of input");
+            }
+            int d = held - BLOCK_SIZE; // bytes in the final partial block
+            System.arraycopy(pending, 0, buffer, 0, BLOCK_SIZE);
+            held = 0;
+            if (d == 0) { // a single block is plain CBC
+                processBlock(buffer, out);
+                return;
+            }
+
+            if (encrypt) {
+                // Cn-1 = DES(Pn-1 XOR Cn-2)
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    buffer[i] ^= chain[i];
+                }
+                des(buffer, cn_1);
+
+                // Cn = DES(Cn-1 XOR Pn*||0)
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    buffer[i] = (byte) (cn_1[i] ^ (i < d ? pending[BLOCK_SIZE+i] : 0));
+                }
+                des(buffer, buffer);
+                out.put(buffer);
+                out.put(cn_1, 0, d);
+            } else {
+                // Z = DES^-1(Cn) = Cn-1 XOR Pn*||0, so the tail of Z is the
+                // stolen tail of Cn-1
+                des(buffer, z);
+                System.arraycopy(pending, BLOCK_SIZE, cn_1, 0, d);
+                System.arraycopy(z, d, cn_1, d, BLOCK_SIZE - d);
+
+                // Pn-1 = DES^-1(Cn-1) XOR Cn-2
+                des(cn_1, scratch);
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    scratch[i] ^= chain[i];
+                }
+                out.put(scratch);
+
+                // Pn* = first d bytes of Z XOR Cn-1
+                for (int i = 0; i < d; i++) {
+                    out.put((byte) (z[i] ^ cn_1[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * CTR: the IV is used as a 64-bit big-endian counter that is encrypted
+     * to produce a keystream XORed with the data. Encryption and decryption
+     * are the same operation and the final block needs no padding.
+     */
+    static class CTR extends CipherStream {
+        private final byte[] counter = new byte[BLOCK_SIZE];
+        private final byte[] keystream = new byte[BLOCK_SIZE];
+
+        CTR(int[] key, int[] iv, Crypto.Engine engine) {
+            super(true, key, iv, engine); // the keystream is always DES encryption
+            Crypto.binary_to_bytes(iv, counter);
+        }
+
+        protected void loadIV(byte[] iv) {
+            System.arraycopy(iv, 0, counter, 0, BLOCK_SIZE);
+        }
+
+        protected void clearIV() {
+            Arrays.fill(counter, (byte) 0);
+        }
+
+        protected void processBlock(byte[] block, ByteBuffer out) {
+            processFinalBlock(block, BLOCK_SIZE, out);
+        }
+
+        protected void processFinalBlock(byte[] block, int length, ByteBuffer out) {
+            des(counter, keystream);
+            for (int i = 0; i < length; i++) {
+                out.put((byte) (block[i] ^ keystream[i]));
+            }
+            for (int i = BLOCK_SIZE - 1; i >= 0; i--) { // counter += 1
+                if (++counter[i] != 0) break;
+            }
+        }
+    }
+}
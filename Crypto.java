@@ -3,8 +3,87 @@
  *   Date: 2/29/16
  */
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
 public class Crypto {
 
+    /**
+     * The 8 DES S-boxes, each with 4 rows of 16 4-bit values. Built once when
+     * the class is loaded rather than on every call to lookupSBoxes().
+     */
+    private static final byte[][][] SBOX = {
+        { {14,4,13,1,2,15,11,8,3,10,6,12,5,9,0,7},     // S1
+            {0,15,7,4,14,2,13,1,10,6,12,11,9,5,3,8},
+            {4,1,14,8,13,6,2,11,15,12,9,7,3,10,5,0},
+            {15,12,8,2,4,9,1,7,5,11,3,14,10,0,6,13} },
+        { {15,1,8,14,6,11,3,4,9,7,2,13,12,0,5,10},     // S2
+            {3,13,4,7,15,2,8,14,12,0,1,10,6,9,11,5},
+            {0,14,7,11,10,4,13,1,5,8,12,6,9,3,2,15},
+            {13,8,10,1,3,15,4,2,11,6,7,12,0,5,14,9} },
+        { {10,0,9,14,6,3,15,5,1,13,12,7,11,4,2,8},     // S3
+            {13,7,0,9,3,4,6,10,2,8,5,14,12,11,15,1},
+            {13,6,4,9,8,15,3,0,11,1,2,12,5,10,14,7},
+            {1,10,13,0,6,9,8,7,4,15,14,3,11,5,2,12} },
+        { {7,13,14,3,0,6,9,10,1,2,8,5,11,12,4,15},     // S4
+            {13,8,11,5,6,15,0,3,4,7,2,12,1,10,14,9},
+            {10,6,9,0,12,11,7,13,15,1,3,14,5,2,8,4},
+            {3,15,0,6,10,1,13,8,9,4,5,11,12,7,2,14} },
+        { {2,12,4,1,7,10,11,6,8,5,3,15,13,0,14,9},     // S5
+            {14,11,2,12,4,7,13,1,5,0,15,10,3,9,8,6},
+            {4,2,1,11,10,13,7,8,15,9,12,5,6,3,0,14},
+            {11,8,12,7,1,14,2,13,6,15,0,9,10,4,5,3} },
+        { {12,1,10,15,9,2,6,8,0,13,3,4,14,7,5,11},     // S6
+            {10,15,4,2,7,12,9,5,6,1,13,14,0,11,3,8},
+            {9,14,15,5,2,8,12,3,7,0,4,10,1,13,11,6},
+            {4,3,2,12,9,5,15,10,11,14,1,7,6,0,8,13} },
+        { {4,11,2,14,15,0,8,13,3,12,9,7,5,10,6,1},     // S7
+            {13,0,11,7,4,9,1,10,14,3,5,12,2,15,8,6},
+            {1,4,11,13,12,3,7,14,10,15,6,8,0,5,9,2},
+            {6,11,13,8,1,4,10,7,9,5,0,15,14,2,3,12} },
+        { {13,2,8,4,6,15,11,1,10,9,3,14,5,0,12,7},     // S8
+            {1,15,13,8,10,3,7,4,12,5,6,11,0,14,9,2},
+            {7,11,4,1,9,12,14,2,0,6,10,13,15,3,5,8},
+            {2,1,14,7,4,10,8,13,15,12,9,0,3,5,6,11} } };
+
+    /**
+     * The S-boxes flattened to 64 entries each, indexed by the 6-bit group
+     * itself, for the constant-time engine's full table scans.
+     */
+    private static final int[][] SBOX_FLAT = flattenSBoxes();
+
+    /**
+     * The S-box lookups encodeData() can be run with.
+     * <p>
+     * TABLE reads the one S-box entry addressed by each group of 6 bits. It
+     * is the fastest, but which memory is read depends on secret data, so
+     * its timing can leak the key through the cache.
+     * <p>
+     * CONSTANT_TIME reads all 64 entries of every S-box and keeps the wanted
+     * one with a mask, so neither its branches nor its memory accesses depend
+     * on the data. Use TimingHarness to compare the two.
+     */
+    enum Engine { TABLE, CONSTANT_TIME }
+
+    /**
+     * Scratch arrays for one DES block, reused by every block a thread
+     * encrypts so that encodeData() allocates nothing in steady state.
+     */
+    static final class Workspace {
+        final int[] IP = new int[64];
+        final int[] Ln = new int[32];
+        final int[] Rn = new int[32];
+        final int[] mangler_result = new int[32];
+        final int[] E = new int[48];
+        final int[][] B = new int[8][6];
+        final int[] sbox_output = new int[32];
+        final int[] R16L16 = new int[64];
+    }
+
+    private static final ThreadLocal<Workspace> WORKSPACE =
+        ThreadLocal.withInitial(Workspace::new);
+
     /**
      * This method implements the DES encryption algorithm.
      * <p>
@@ -17,29 +96,92 @@ public class Crypto {
      * @return          the 64-bit ciphertext in binary
      */
     public static int[] DES(int[] plaintext, int[] key) {
+        return DES(plaintext, key, Engine.TABLE);
+    }
+
+    /**
+     * This method implements the DES encryption algorithm with the given
+     * S-box engine.
+     *
+     * @param plaintext the 64-bit plaintext in binary to be encrypted
+     * @param key       the 56-bit key stored as 64-bit in binary
+     * @param engine    the S-box lookup to use
+     * @return          the 64-bit ciphertext in binary
+     */
+    public static int[] DES(int[] plaintext, int[] key, Engine engine) {
         if (plaintext.length != 64 || key.length != 64) {
             System.err.println("Size not 64");
             System.exit(1);
         }
 
         int[][] kn = generatePerRoundKeys(key);
-        int[] ciphertext = encodeData(plaintext, kn);
+        int[] ciphertext = encodeData(plaintext, kn, engine);
 
         return ciphertext;
     }
 
+    /**
+     * This method implements the DES decryption algorithm.
+     * <p>
+     * Decryption runs the same rounds as encryption with the 16 per-round
+     * keys applied in reverse order.
+     *
+     * @param ciphertext the 64-bit ciphertext in binary to be decrypted
+     * @param key        the 56-bit key stored as 64-bit in binary
+     * @return           the 64-bit plaintext in binary
+     */
+    public static int[] DESDecrypt(int[] ciphertext, int[] key) {
+        return DESDecrypt(ciphertext, key, Engine.TABLE);
+    }
+
+    /**
+     * This method implements the DES decryption algorithm with the given
+     * S-box engine.
+     *
+     * @param ciphertext the 64-bit ciphertext in binary to be decrypted
+     * @param key        the 56-bit key stored as 64-bit in binary
+     * @param engine     the S-box lookup to use
+     * @return           the 64-bit plaintext in binary
+     */
+    public static int[] DESDecrypt(int[] ciphertext, int[] key, Engine engine) {
+        if (ciphertext.length != 64 || key.length != 64) {
+            System.err.println("Size not 64");
+            System.exit(1);
+        }
+
+        int[][] kn = reversePerRoundKeys(generatePerRoundKeys(key));
+        int[] plaintext = encodeData(ciphertext, kn, engine);
+
+        return plaintext;
+    }
+
     /**
      * This method generates 16 per-round keys for the DES algorithm.
      *
      * @param key an int[] array containing the 64-bit key in binary
      * @return    an int[][] 2d array contianing 16 48-bit per-round keys
      */
-    private static int[][] generatePerRoundKeys(int[] key) {
+    static int[][] generatePerRoundKeys(int[] key) {
         int[] p_k = permutateKey(key);
         int[][] cndn = generateCnDn(p_k);
         return permutateCnDn(cndn);
     }
 
+    /**
+     * This method reverses the order of the per-round keys so that
+     * encodeData() undoes an encryption.
+     *
+     * @param kn the 16 48-bit per-round keys
+     * @return   the same keys from K16 down to K1
+     */
+    static int[][] reversePerRoundKeys(int[][] kn) {
+        int[][] reversed = new int[kn.length][];
+        for (int i = 0; i < kn.length; i++) {
+            reversed[i] = kn[kn.length - (i+1)];
+        }
+        return reversed;
+    }
+
     /**
      * This method permutates the main key (only uses 56 useful bits).
      *
@@ -163,14 +305,32 @@ public class Crypto {
      *
      * @param plaintext the text in binary to be encrypted
      * @param kn        the per-round keys in binary
+     * @param engine    the S-box lookup to use
      * @return          the ciphertext in binary
      */
-    private static int[] encodeData(int[] plaintext, int[][] kn) {
-        int[] IP = plaintextInitialPermutation(plaintext);
-        int[] R16L16 = performDESRounds(IP, kn);
+    static int[] encodeData(int[] plaintext, int[][] kn, Engine engine) {
+        int[] ciphertext = new int[64];
+        encodeData(plaintext, ciphertext, kn, engine);
+        return ciphertext;
+    }
+
+    /**
+     * This method performs the encoding logic for the DES algorithm into a
+     * caller-supplied array. Intermediate results are kept in the calling
+     * thread's Workspace, so nothing is allocated.
+     *
+     * @param plaintext  the text in binary to be encrypted
+     * @param ciphertext receives the ciphertext in binary; may be plaintext
+     * @param kn         the per-round keys in binary
+     * @param engine     the S-box lookup to use
+     */
+    static void encodeData(int[] plaintext, int[] ciphertext, int[][] kn, Engine engine) {
+        Workspace ws = WORKSPACE.get();
+        plaintextInitialPermutation(plaintext, ws.IP);
+        performDESRounds(ws.IP, kn, engine, ws.R16L16, ws);
+        int[] R16L16 = ws.R16L16;
 
         // Apply a final permutation to R16L16 to obtain the DES ciphertext
-        int[] ciphertext = new int[64];
         for (byte i = 0; i < 8; i++) {
             ciphertext[(8*i) + 0] = R16L16[(8*5) - (i+1)]; // A
             ciphertext[(8*i) + 1] = R16L16[(8*1) - (i+1)]; // B
@@ -181,18 +341,15 @@ public class Crypto {
             ciphertext[(8*i) + 6] = R16L16[(8*8) - (i+1)]; // G
             ciphertext[(8*i) + 7] = R16L16[(8*4) - (i+1)]; // H
         }
-
-        return ciphertext;
     }
 
     /**
      * This function performs an initial permutation (IP) on the plaintext message.
      *
      * @param plaintext the main plaintext message for DES
-     * @return          the plaintext permutated
+     * @param IP        receives the plaintext permutated
      */
-    private static int[] plaintextInitialPermutation(int[] plaintext) {
-        int[] IP = new int[64];
+    private static void plaintextInitialPermutation(int[] plaintext, int[] IP) {
         for (byte i = 0; i < 8; i++) {
             IP[(8*5) - (i+1)] = plaintext[(8*i) + 0]; // A
             IP[(8*1) - (i+1)] = plaintext[(8*i) + 1]; // B
@@ -203,7 +360,6 @@ public class Crypto {
             IP[(8*8) - (i+1)] = plaintext[(8*i) + 6]; // G
             IP[(8*4) - (i+1)] = plaintext[(8*i) + 7]; // H
         }
-        return IP;
     }
 
     /**
@@ -212,38 +368,39 @@ public class Crypto {
      * The initial permutation IP is divided into 32-bit halves L0 and R0.
      * A mangler function that operates on data blocks of 32 bits Ln and Rn
      * and keys of 48 bits Kn, is then used to produce a block of 32 bits.
+     * Only the latest Ln and Rn are kept, in the workspace.
      *
-     * @param IP the permuated plaintext
-     * @return   a 32-bit block used to create the ciphertext of the plaintext
+     * @param IP     the permuated plaintext
+     * @param engine the S-box lookup to use
+     * @param R16L16 receives the 64-bit block used to create the ciphertext
+     * @param ws     scratch arrays for the rounds
      */
-    private static int[] performDESRounds(int[] IP, int[][] kn) {
-        int[][] Ln = new int[17][32];
-        int[][] Rn = new int[17][32];
-
-        System.arraycopy(IP, 0, Ln[0], 0, 32); // L0
-        System.arraycopy(IP, 32, Rn[0], 0, 32); // R0
+    private static void performDESRounds(int[] IP, int[][] kn, Engine engine,
+                                         int[] R16L16, Workspace ws) {
+        int[] Ln = ws.Ln;
+        int[] Rn = ws.Rn;
+        int[] mangler_result = ws.mangler_result;
 
-        int[][] mangler_result = new int[16][32];
+        System.arraycopy(IP, 0, Ln, 0, 32); // L0
+        System.arraycopy(IP, 32, Rn, 0, 32); // R0
 
         // Calculating Ln and Rn
         for (byte i = 1; i < 17; i++) {
-            // Step 1. Ln = Rn-1
-            Ln[i] = Rn[i-1];
-
-            // Step 2. Rn = Ln-1 XOR mangler_function(Rn-1, Kn)
-            mangler_result[i-1] = mangler(Rn[i-1], kn[i-1]);
+            mangler(Rn, kn[i-1], engine, mangler_result, ws);
             for (byte j = 0; j < 32; j++) {
-                Rn[i][j] = Ln[i-1][j] ^ mangler_result[i-1][j];
+                int r = Rn[j];
+                // Step 1. Rn = Ln-1 XOR mangler_function(Rn-1, Kn)
+                Rn[j] = Ln[j] ^ mangler_result[j];
+                // Step 2. Ln = Rn-1
+                Ln[j] = r;
             }
         }
 
         // R16L16 holds the reversed final 64-bit block from the 16th DES round
-        int[] R16L16 = new int[64];
         for (byte i = 0; i < 32; i++) {
-            R16L16[i] = Rn[16][i];
-            R16L16[i+32] = Ln[16][i];
+            R16L16[i] = Rn[i];
+            R16L16[i+32] = Ln[i];
         }
-        return R16L16;
     }
 
     /**
@@ -251,33 +408,35 @@ public class Crypto {
      * <p>
      * See performDESRounds() for more information.
      *
-     * @param block 32-bit block Rn-1
-     * @param key   16-bit key Kn
-     * @return      result of mangler function
+     * @param block  32-bit block Rn-1
+     * @param key    16-bit key Kn
+     * @param engine the S-box lookup to use
+     * @param result receives the result of mangler function
+     * @param ws     scratch arrays for the intermediate steps
      */
-    private static int[] mangler(int[] block, int[] key) {
-        int[] E = expandBlock(block); // E(Rn-1)
+    private static void mangler(int[] block, int[] key, Engine engine, int[] result,
+                                Workspace ws) {
+        int[] E = ws.E;
+        expandBlock(block, E); // E(Rn-1)
 
-        // result = Kn XOR E(Rn-1)
-        // B = result split into 8 groups of 6 bits
-        int[] result = new int[48];
+        // E = Kn XOR E(Rn-1)
+        // B = E split into 8 groups of 6 bits
         for (byte i = 0; i < 48; i++) {
-            result[i] = E[i] ^ key[i];
+            E[i] ^= key[i];
         }
-        int[][] B = new int[8][6];
+        int[][] B = ws.B;
         for (int i = 0; i < 8; i++) {
-            System.arraycopy(result, i*6, B[i], 0, 6);
+            System.arraycopy(E, i*6, B[i], 0, 6);
         }
 
-        int[] sbox_output = lookupSBoxes(B);
-        return permutateSBoxOutput(sbox_output);
+        lookupSBoxes(B, engine, ws.sbox_output);
+        permutateSBoxOutput(ws.sbox_output, result);
     }
 
     /**
      * This method expands 32-bit block Rn-1 to 48 bits based on E-bit selection table
      */
-    private static int[] expandBlock(int[] block) {
-        int[] E = new int[48];
+    private static void expandBlock(int[] block, int[] E) {
         E[0] = block[31];
         for (byte i = 1;  i < 6;  i++) E[i] = block[i-1];
         for (byte i = 6;  i < 12; i++) E[i] = block[i-3];
@@ -288,88 +447,73 @@ public class Crypto {
         for (byte i = 36; i < 42; i++) E[i] = block[i-13];
         for (byte i = 42; i < 47; i++) E[i] = block[i-15];
         E[47] = block[0];
-        return E;
     }
 
     /**
      * This method uses 8 groups of 6 bits as addresses to tables known
      * as S-boxes, where 4-bit numbers are located. Each group of 6 bits
      * is transformed into these 4-bit numbers.
+     * <p>
+     * The 2 outer bits of a group select the row of its S-box and the 4
+     * inner bits select the column.
      *
-     * @param B 8 groups of 6 bits used as addresses to S-boxes
-     * @return  8 groups of 4 bits found in S-boxes
-     */
-    private static int[] lookupSBoxes(int[][] B) {
-
-        byte[][][] SBOX = {
-            { {14,4,13,1,2,15,11,8,3,10,6,12,5,9,0,7},     // S1
-                {0,15,7,4,14,2,13,1,10,6,12,11,9,5,3,8},
-                {4,1,14,8,13,6,2,11,15,12,9,7,3,10,5,0},
-                {15,12,8,2,4,9,1,7,5,11,3,14,10,0,6,13} },
-            { {15,1,8,14,6,11,3,4,9,7,2,13,12,0,5,10},     // S2
-                {3,13,4,7,15,2,8,14,12,0,1,10,6,9,11,5},
-                {0,14,7,11,10,4,13,1,5,8,12,6,9,3,2,15},
-                {13,8,10,1,3,15,4,2,11,6,7,12,0,5,14,9} },
-            { {10,0,9,14,6,3,15,5,1,13,12,7,11,4,2,8},     // S3
-                {13,7,0,9,3,4,6,10,2,8,5,14,12,11,15,1},
-                {13,6,4,9,8,15,3,0,11,1,2,12,5,10,14,7},
-                {1,10,13,0,6,9,8,7,4,15,14,3,11,5,2,12} },
-            { {7,13,14,3,0,6,9,10,1,2,8,5,11,12,4,15},     // S4
-                {13,8,11,5,6,15,0,3,4,7,2,12,1,10,14,9},
-                {10,6,9,0,12,11,7,13,15,1,3,14,5,2,8,4},
-                {3,15,0,6,10,1,13,8,9,4,5,11,12,7,2,14} },
-            { {2,12,4,1,7,10,11,6,8,5,3,15,13,0,14,9},     // S5
-                {14,11,2,12,4,7,13,1,5,0,15,10,3,9,8,6},
-                {4,2,1,11,10,13,7,8,15,9,12,5,6,3,0,14},
-                {11,8,12,7,1,14,2,13,6,15,0,9,10,4,5,3} },
-            { {12,1,10,15,9,2,6,8,0,13,3,4,14,7,5,11},     // S6
-                {10,15,4,2,7,12,9,5,6,1,13,14,0,11,3,8},
-                {9,14,15,5,2,8,12,3,7,0,4,10,1,13,11,6},
-                {4,3,2,12,9,5,15,10,11,14,1,7,6,0,8,13} },
-            { {4,11,2,14,15,0,8,13,3,12,9,7,5,10,6,1},     // S7
-                {13,0,11,7,4,9,1,10,14,3,5,12,2,15,8,6},
-                {1,4,11,13,12,3,7,14,10,15,6,8,0,5,9,2},
-                {6,11,13,8,1,4,10,7,9,5,0,15,14,2,3,12} },
-            { {13,2,8,4,6,15,11,1,10,9,3,14,5,0,12,7},     // S8
-                {1,15,13,8,10,3,7,4,12,5,6,11,0,14,9,2},
-                {7,11,4,1,9,12,14,2,0,6,10,13,15,3,5,8},
-                {2,1,14,7,4,10,8,13,15,12,9,0,3,5,6,11} } };
-
-        // Translate bits in B into indeces of S-boxes as binary strings
-        String[] rows_bin = new String[8];
-        String[] cols_bin = new String[8];
-        for (byte i = 0; i < 8; i++) {
-            rows_bin[i] = "" + B[i][0] + B[i][5]; // 2 outer bits
-            cols_bin[i] = "" + B[i][1] + B[i][2] + B[i][3] + B[i][4]; // 4 inner
-        }
-        // Translate S-box binary string indeces into decimal integers
-        int[] rows_dec = new int[8];
-        int[] cols_dec = new int[8];
+     * @param B           8 groups of 6 bits used as addresses to S-boxes
+     * @param engine      the S-box lookup to use
+     * @param sbox_output receives 8 groups of 4 bits found in S-boxes
+     */
+    private static void lookupSBoxes(int[][] B, Engine engine, int[] sbox_output) {
         for (byte i = 0; i < 8; i++) {
-            rows_dec[i] = Integer.parseInt(rows_bin[i], 2);
-            cols_dec[i] = Integer.parseInt(cols_bin[i], 2);
-        }
+            int value;
+            if (engine == Engine.TABLE) {
+                int row = (B[i][0] << 1) | B[i][5]; // 2 outer bits
+                int col = (B[i][1] << 3) | (B[i][2] << 2) | (B[i][3] << 1) | B[i][4]; // 4 inner
+                value = SBOX[i][row][col];
+            } else {
+                int address = (B[i][0] << 5) | (B[i][1] << 4) | (B[i][2] << 3)
+                            | (B[i][3] << 2) | (B[i][4] << 1) | B[i][5];
+                value = scanSBox(SBOX_FLAT[i], address);
+            }
 
-        // S-box values are found in decimal, then converted to binary strings
-        // S-box values are found in decimal, then converted to binary strings
-        String[] sbox_values = new String[8];
-        for (byte i = 0; i < 8; i++) {
-            sbox_values[i] = Integer.toBinaryString(SBOX[i][rows_dec[i]][cols_dec[i]]);
-        }
-        for (byte i = 0; i < 8; i++) {
-            while (sbox_values[i].length() < 4) {
-                sbox_values[i] = "0" + sbox_values[i]; // padding
+            // S-box output is an array of bits, most significant first
+            for (byte j = 0; j < 4; j++) {
+                sbox_output[j+(i*4)] = (value >> (3-j)) & 1;
             }
         }
+    }
 
-        // S-box output is an array of bits
-        int[] sbox_output = new int[32];
-        for (byte i = 0; i < 8; i++) {
-            for (byte j = 0; j < 4; j++) {
-                sbox_output[j+(i*4)] = Integer.parseInt(sbox_values[i].substring(j,j+1));
+    /**
+     * This method finds an S-box entry without branching on or indexing by
+     * its address: every entry is read and all but the addressed one are
+     * masked out.
+     *
+     * @param sbox    a flattened S-box from SBOX_FLAT
+     * @param address the 6-bit group to look up
+     * @return        the 4-bit S-box value
+     */
+    private static int scanSBox(int[] sbox, int address) {
+        int value = 0;
+        for (int e = 0; e < 64; e++) {
+            int mask = ((address ^ e) - 1) >> 31; // -1 when e == address, else 0
+            value |= sbox[e] & mask;
+        }
+        return value;
+    }
+
+    /**
+     * This method flattens each S-box into 64 entries indexed by the 6-bit
+     * group, with the row taken from the outer bits and the column from the
+     * inner bits.
+     */
+    private static int[][] flattenSBoxes() {
+        int[][] flat = new int[8][64];
+        for (int i = 0; i < 8; i++) {
+            for (int address = 0; address < 64; address++) {
+                int row = ((address >> 4) & 2) | (address & 1);
+                int col = (address >> 1) & 0xf;
+                flat[i][address] = SBOX[i][row][col];
             }
         }
-        return sbox_output;
+        return flat;
     }
 
     /**
@@ -377,10 +521,9 @@ public class Crypto {
      * obtain the final result for the mangler function.
      *
      * @param sbox_output the array of bits generated from lookupSBoxes()
-     * @return            the permutation of sbox_output
+     * @param m_result    receives the permutation of sbox_output
      */
-    private static int[] permutateSBoxOutput(int[] sbox_output) {
-        int[] m_result = new int[32];
+    private static void permutateSBoxOutput(int[] sbox_output, int[] m_result) {
         m_result[0]  = sbox_output[15]; m_result[1]  = sbox_output[6];
         m_result[2]  = sbox_output[19]; m_result[3]  = sbox_output[20];
         m_result[4]  = sbox_output[28]; m_result[5]  = sbox_output[11];
@@ -397,156 +540,159 @@ public class Crypto {
         m_result[26] = sbox_output[29]; m_result[27] = sbox_output[5];
         m_result[28] = sbox_output[21]; m_result[29] = sbox_output[10];
         m_result[30] = sbox_output[3];  m_result[31] = sbox_output[24];
-        return m_result;
     }
 
     /**
      * This method implements the ECB block cipher mode.
+     * <p>
+     * The last block is zero padded. The blocks are encrypted by a
+     * CipherStream in buffers from BufferPool. The stream for the last key
+     * is kept for the next call on the same thread, so while the key stays
+     * the same the only allocation is the returned array; a new key costs a
+     * new key schedule. See clearCachedKey().
      */
     static int[] ECB(String plaintext, String key) {
-        int[] p = string_to_binary(plaintext);
-        int[] k_initial = string_to_binary(key);
-        int[] k = new int[64];
-
-        if (k_initial.length < 64) {
+        if (key.length() < 8) { // 8 bits per character
             System.err.println("Size of key is less than 64");
             System.exit(1);
-        } else { // use only first 64 bits of key
-            System.arraycopy(k_initial, 0, k, 0, 64);
-        }
-
-        int full_blocks = p.length / 64;
-
-        int[][] pn; // pn holds 64-bit blocks to be put through DES algorithm
-
-        if (p.length % 64 > 0) { // if a block is less than 64-bits
-            pn = new int[full_blocks+1][64];
-            for (int i = 0; i < pn.length-1; i++) {
-                System.arraycopy(p, (i*64), pn[i], 0, 64); // save full blocks
-            }
-            // save last block; System.arraycopy() adds padding to last block
-            System.arraycopy(p,full_blocks*64, pn[pn.length-1],0, p.length%64);
-
-        } else { // if all blocks are 64-bits
-            pn = new int[full_blocks][64];
-            for (int i = 0; i < pn.length; i++) {
-                System.arraycopy(p, (i*64), pn[i], 0, 64);
-            }
         }
 
-        // Perform DES on all blocks
-        int[][] encrypted_blocks = new int[pn.length][64];
-        for (int i = 0; i < encrypted_blocks.length; i++) {
-            encrypted_blocks[i] = DES(pn[i], k);
-        }
-
-        // Concatenate encrypted blocks into an array
-        int[] encrypted_arr = new int[encrypted_blocks.length*64];
-        for (int i = 0; i < encrypted_arr.length / 64; i++) {
-            System.arraycopy(encrypted_blocks[i], 0, encrypted_arr, (i*64), 64);
-        }
-
-        // Get 8-bit binary strings of ciphertext
-        String[] ciphertext_string = new String[encrypted_arr.length / 8];
-        for (int i = 0; i < encrypted_arr.length / 8; i++) {
-            ciphertext_string[i] = "";
-            for (int j = 0; j < 8; j++) {
-                ciphertext_string[i] += encrypted_arr[(i*8)+j];
-            }
-        }
-
-        // ciphertext is the binary strings converted to decimal integers
-        int[] ciphertext = new int[ciphertext_string.length];
-        for (int i = 0; i < ciphertext.length; i++) {
-            int decimal = Integer.parseInt(ciphertext_string[i], 2);
-            ciphertext[i] = decimal;
-        }
-
-        return ciphertext;
+        return encrypt_string("ecb", plaintext, key, null);
     }
 
     /**
      * This method implements the CBC block cipher mode.
+     * <p>
+     * The last block is zero padded. See ECB() for how streams and buffers
+     * are reused; the IV may change on every call.
      */
     static int[] CBC(String plaintext, String key, String IV) {
-        int p[] = string_to_binary(plaintext);
-        int k_initial[] = string_to_binary(key);
-        int iv_initial[] = string_to_binary(IV);
-        int k[] = new int[64];
-        int iv[] = new int[64];
-
-        if (k_initial.length < 64 || iv_initial.length < 64) {
+        if (key.length() < 8 || IV.length() < 8) { // 8 bits per character
             System.err.println("Size of key or IV is less than 64");
             System.exit(1);
-        } else { // use only first 64 bits of key and IV
-            System.arraycopy(k_initial, 0, k, 0, 64);
-            System.arraycopy(iv_initial, 0, iv, 0, 64);
         }
 
-        int full_blocks = p.length / 64;
-        int num_blocks = full_blocks;
-
-        int[][] pn; // pn holds 64-bit blocks to be put through DES algorithm
-
-        if (p.length % 64 > 0) { // if a block is less than 64-bits
-            num_blocks += 1;
-
-            pn = new int[full_blocks+1][64];
-            for (int i = 0; i < pn.length-1; i++) {
-                System.arraycopy(p, (i*64), pn[i], 0, 64); // save full blocks
-            }
-            // save last block; System.arraycopy() adds padding to last block
-            System.arraycopy(p,full_blocks*64, pn[pn.length-1],0, p.length%64);
+        return encrypt_string("cbc", plaintext, key, IV);
+    }
 
-        } else { // if all blocks are 64-bits
-            pn = new int[full_blocks][64];
-            for (int i = 0; i < pn.length; i++) {
-                System.arraycopy(p, (i*64), pn[i], 0, 64);
-            }
+    /**
+     * This method implements the CBC block cipher mode with ciphertext
+     * stealing (CS3), so the ciphertext is as long as the plaintext rather
+     * than padded to a multiple of 64 bits. See CipherStream.CBCCS3.
+     */
+    static int[] CBC_CS3(String plaintext, String key, String IV) {
+        if (key.length() < 8 || IV.length() < 8) { // 8 bits per character
+            System.err.println("Size of key or IV is less than 64");
+            System.exit(1);
+        } else if (plaintext.length() < 8) {
+            System.err.println("Size of plaintext is less than 64");
+            System.exit(1);
         }
 
-        // XOR Initialization Vector with first block of plaintext
-        int[][] iv_2d = arr_1d_to_2d(iv);
-        int[][] first_xor = new int[1][64];
-        for (int i = 0; i < first_xor.length; i++) {
-            for (int j = 0; j < first_xor[0].length; j++) {
-                first_xor[i][j] = iv_2d[i][j] ^ pn[0][j];
-            }
-        }
+        return encrypt_string("cbc-cs3", plaintext, key, IV);
+    }
 
-        // Encrypt result of the XOR to result in c1
-        int[][] ci = new int[num_blocks][64];
-        ci[0] = DES(first_xor[0], k);
+    /**
+     * Destroys the stream ECB(), CBC() and CBC_CS3() keep for the calling
+     * thread, zeroing its key, so the key does not stay in memory after the
+     * last call.
+     */
+    static void clearCachedKey() {
+        StringCipher cached = STRING_CIPHER.get();
+        if (cached.stream != null) {
+            cached.stream.destroy();
+            cached.stream = null;
+        }
+        cached.mode = null;
+        Arrays.fill(cached.key, (byte) 0);
+    }
 
-        // XOR each ci with the next plaintext block, then encrypt each with DES
-        int[][] xor = new int[num_blocks-1][64];
-        for (int i = 1; i < num_blocks; i++) {
-            for (int j = 0; j < 64; j++) {
-                xor[i-1][j] = ci[i-1][j] ^ pn[i][j];
-                ci[i] = DES(xor[i-1], k);
-            }
-        }
+    /**
+     * The stream encrypt_string() last built on a thread, with the mode and
+     * key bytes it came from, so that repeated calls with the same key skip
+     * building the key schedule. The caller's strings are not kept.
+     */
+    private static final class StringCipher {
+        String mode;
+        CipherStream stream;
+        final byte[] key = new byte[8];
+        final byte[] iv = new byte[8];
+        final byte[] next_key = new byte[8]; // the key of the current call
+    }
 
-        // Get 8-bit binary strings of ciphertext
-        int[] encrypted_arr = arr_2d_to_1d(ci);
-        String[] ciphertext_string = new String[encrypted_arr.length / 8];
-        for (int i = 0; i < encrypted_arr.length / 8; i++) {
-            ciphertext_string[i] = "";
-            for (int j = 0; j < 8; j++) {
-                ciphertext_string[i] += encrypted_arr[(i*8)+j];
+    private static final ThreadLocal<StringCipher> STRING_CIPHER =
+        ThreadLocal.withInitial(StringCipher::new);
+
+    /**
+     * This helper method encrypts a string with the given mode in pooled
+     * buffers and returns the ciphertext bytes as decimal integers. Only the
+     * first 64 bits of the key and IV are used.
+     */
+    private static int[] encrypt_string(String mode, String plaintext, String key, String IV) {
+        StringCipher cached = STRING_CIPHER.get();
+        if (IV != null) {
+            // These methods are deterministic, so the caller's IV is used as
+            // given, even when it is the same as the last call's
+            string_to_bytes(IV, cached.iv);
+        }
+        string_to_bytes(key, cached.next_key);
+        boolean same_key = MessageDigest.isEqual(cached.key, cached.next_key);
+        Arrays.fill(cached.next_key, (byte) 0);
+        if (!mode.equals(cached.mode) || !same_key) {
+            clearCachedKey();
+            string_to_bytes(key, cached.key);
+            int[] key_bits = bytes_to_binary(cached.key);
+            cached.stream = CipherStream.getInstance(mode, true, key_bits,
+                IV == null ? null : bytes_to_binary(cached.iv));
+            Arrays.fill(key_bits, 0);
+            cached.mode = mode;
+        }
+        if (IV != null) {
+            cached.stream.reset(cached.iv);
+        }
+
+        ByteBuffer in = BufferPool.acquire(plaintext.length());
+        ByteBuffer out;
+        try {
+            for (int i = 0; i < plaintext.length(); i++) {
+                in.put(char_to_byte(plaintext.charAt(i)));
             }
+            in.flip();
+            out = cached.stream.process(in);
+        } finally {
+            BufferPool.release(in);
         }
 
-        // Ciphertext is the binary strings converted to decimal integers
-        int[] ciphertext = new int[ciphertext_string.length];
+        // Ciphertext is the bytes as unsigned decimal integers
+        int[] ciphertext = new int[out.remaining()];
         for (int i = 0; i < ciphertext.length; i++) {
-            int decimal = Integer.parseInt(ciphertext_string[i], 2);
-            ciphertext[i] = decimal;
+            ciphertext[i] = out.get(i) & 0xff;
         }
+        BufferPool.release(out);
 
         return ciphertext;
     }
 
+    /**
+     * This helper method converts the first dst.length characters of a
+     * string with char_to_byte(), the bytes string_to_binary() would give.
+     */
+    private static void string_to_bytes(String str, byte[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = char_to_byte(str.charAt(i));
+        }
+    }
+
+    /**
+     * This helper method returns the byte string_to_binary() gives a
+     * character: the first 8 digits of its binary string, which is the
+     * character itself up to 0xff and its top 8 significant bits above that.
+     */
+    static byte char_to_byte(char c) {
+        int extra = Math.max(0, 24 - Integer.numberOfLeadingZeros(c)); // digits past 8
+        return (byte) (c >>> extra);
+    }
+
     /**
      * This helper method converts strings into their binary representations
      */
@@ -567,6 +713,67 @@ public class Crypto {
         return arr;
     }
 
+    /**
+     * This helper method converts bytes into their binary representations
+     */
+    static int[] bytes_to_binary(byte[] bytes) {
+        int[] arr = new int[bytes.length*8];
+        bytes_to_binary(bytes, arr);
+        return arr;
+    }
+
+    /**
+     * This helper method converts bytes into binary in an existing array
+     */
+    static void bytes_to_binary(byte[] bytes, int[] arr) {
+        for (int i = 0; i < bytes.length; i++) {
+            for (int j = 0; j < 8; j++) {
+                arr[j+(i*8)] = (bytes[i] >> (7-j)) & 1; // most significant first
+            }
+        }
+    }
+
+    /**
+     * This helper method packs binary digits back into bytes
+     */
+    static byte[] binary_to_bytes(int[] arr) {
+        byte[] bytes = new byte[arr.length/8];
+        binary_to_bytes(arr, bytes);
+        return bytes;
+    }
+
+    /**
+     * This helper method packs binary digits into an existing byte array
+     */
+    static void binary_to_bytes(int[] arr, byte[] bytes) {
+        for (int i = 0; i < arr.length/8; i++) {
+            int b = 0;
+            for (int j = 0; j < 8; j++) {
+                b = (b << 1) | arr[j+(i*8)];
+            }
+            bytes[i] = (byte) b;
+        }
+    }
+
+    /**
+     * This helper method converts a string of hex digits into binary
+     */
+    static int[] hex_to_binary(String hex) {
+        // Keys pass through here, so errors give positions, never the digits
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits (" + hex.length() + ")");
+        }
+        byte[] bytes = new byte[hex.length()/2];
+        for (int i = 0; i < hex.length(); i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid hex digit at position " + (i+1));
+            }
+            bytes[i/2] |= (byte) (digit << (i % 2 == 0 ? 4 : 0));
+        }
+        return bytes_to_binary(bytes);
+    }
+
     /**
      * This helper method returns a 1d equivalent array of a 2d array
      */
@@ -631,6 +838,10 @@ public class Crypto {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0) { // command-line tool; no arguments runs the demo
+            System.exit(CryptoCLI.run(args));
+        }
+
         int[] plaintext_DES = {
             0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1, 0, 0, 0, 1, 1,
             0, 1, 0, 0, 0, 1, 0, 1, 0, 1, 1, 0, 0, 1, 1, 1,
@@ -727,6 +938,29 @@ public class Crypto {
         for (int i = 0; i < ciphertext_CBC_2.length; i++) {
             System.out.print(ciphertext_CBC_2[i] + " ");
         }
+
+        String plaintext_CS3 = "I LOVE SECURITY";
+        String key_CS3 = "ABCDEFGH";
+        String IV_CS3 = "ABCDEFGH";
+
+        System.out.println("\n-----CBC-CS3----------------------");
+        int[] ciphertext_CS3 = CBC_CS3(plaintext_CS3, key_CS3, IV_CS3);
+        System.out.print(" Plaintext: ");
+        for (int i = 0; i < plaintext_CS3.length(); i++) {
+            System.out.print(plaintext_CS3.charAt(i));
+        }
+        System.out.print("\n       Key: ");
+        for (int i = 0; i < key_CS3.length(); i++) {
+            System.out.print(key_CS3.charAt(i));
+        }
+        System.out.print("\n        IV: ");
+        for (int i = 0; i < IV_CS3.length(); i++) {
+            System.out.print(IV_CS3.charAt(i));
+        }
+        System.out.print("\nCiphertext: ");
+        for (int i = 0; i < ciphertext_CS3.length; i++) {
+            System.out.print(ciphertext_CS3[i] + " ");
+        }
         System.out.println();
     }
 
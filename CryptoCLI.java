@@ -0,0 +1,313 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Base64;
+
+/**
+ * This class implements the command-line tool started by Crypto.main() when
+ * it is given arguments:
+ * <pre>
+ * java Crypto encrypt|decrypt --mode ecb|cbc|cbc-cs3|ctr --key-hex KEY [--iv-hex IV]
+ *             [--encoding raw|hex|base64] [--engine table|ct]
+ *             [--in FILE] [--out FILE] [--stats]
+ * </pre>
+ * Data is streamed from stdin (or --in) to stdout (or --out) through
+ * fixed-size direct buffers. The encoding applies to the ciphertext side: it
+ * is the output encoding when encrypting and the input encoding when
+ * decrypting.
+ */
+class CryptoCLI {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final String USAGE =
+        "Usage: java Crypto encrypt|decrypt --mode ecb|cbc|cbc-cs3|ctr --key-hex KEY\n" +
+        "                   [--iv-hex IV] [--encoding raw|hex|base64]\n" +
+        "                   [--engine table|ct] [--in FILE] [--out FILE] [--stats]\n" +
+        "KEY and IV are 16 hex digits. ECB and CBC zero pad the last block;\n" +
+        "CBC-CS3 and CTR output is the same length as the input. The ct engine\n" +
+        "is constant-time but slower than the default table engine.";
+
+    /**
+     * Runs the tool and returns the process exit status.
+     */
+    static int run(String[] args) {
+        String operation = args[0];
+        String mode = null, keyHex = null, ivHex = null;
+        String encoding = "raw", engineName = "table", inFile = null, outFile = null;
+        boolean stats = false;
+
+        if (!operation.equals("encrypt") && !operation.equals("decrypt")) {
+            System.err.println(USAGE);
+            return 1;
+        }
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--stats")) {
+                stats = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                System.err.println("Missing value for " + arg);
+                System.err.println(USAGE);
+                return 1;
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--mode":     mode = value.toLowerCase(); break;
+                case "--key-hex":  keyHex = value; break;
+                case "--iv-hex":   ivHex = value; break;
+                case "--encoding": encoding = value.toLowerCase(); break;
+                case "--engine":   engineName = value.toLowerCase(); break;
+                case "--in":       inFile = value; break;
+                case "--out":      outFile = value; break;
+                default:
+                    System.err.println("Unknown option " + arg);
+                    System.err.println(USAGE);
+                    return 1;
+            }
+        }
+        if (mode == null || keyHex == null) {
+            System.err.println(USAGE);
+            return 1;
+        }
+        if (!CipherStream.isMode(mode)) {
+            System.err.println("Unknown mode " + mode);
+            return 1;
+        }
+        if (!encoding.equals("raw") && !encoding.equals("hex") && !encoding.equals("base64")) {
+            System.err.println("Unknown encoding " + encoding);
+            return 1;
+        }
+        Crypto.Engine engine;
+        switch (engineName) {
+            case "table": engine = Crypto.Engine.TABLE; break;
+            case "ct":    engine = Crypto.Engine.CONSTANT_TIME; break;
+            default:
+                System.err.println("Unknown engine " + engineName);
+                return 1;
+        }
+
+        boolean encrypt = operation.equals("encrypt");
+        Stats summary = new Stats();
+        try {
+            CipherStream cipher = CipherStream.getInstance(mode, encrypt,
+                Crypto.hex_to_binary(keyHex),
+                ivHex == null ? null : Crypto.hex_to_binary(ivHex), engine);
+
+            // Closed in reverse order, so the encoder is flushed into the file first
+            try (InputStream file_in = inFile == null ? System.in : new FileInputStream(inFile);
+                 OutputStream file_out = outFile == null ? System.out : new FileOutputStream(outFile);
+                 InputStream in = encrypt ? file_in : decoder(encoding, file_in);
+                 OutputStream out = encrypt ? encoder(encoding, file_out) : file_out) {
+                stream(cipher, Channels.newChannel(in), Channels.newChannel(out), summary);
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+
+        if (stats) {
+            summary.print();
+        }
+        return 0;
+    }
+
+    /**
+     * Pumps src through the cipher into dst using two direct buffers from
+     * BufferPool, reused for every chunk.
+     */
+    static void stream(CipherStream cipher, ReadableByteChannel src,
+                       WritableByteChannel dst, Stats stats) throws IOException {
+        ByteBuffer in = BufferPool.acquire(BUFFER_SIZE);
+        ByteBuffer out = BufferPool.acquire(BUFFER_SIZE + 2*CipherStream.BLOCK_SIZE);
+        try {
+            stats.start();
+            while (src.read(in) != -1) {
+                in.flip();
+                long t0 = System.nanoTime();
+                stats.bytes_in += in.remaining();
+                cipher.update(in, out);
+                stats.chunk(System.nanoTime() - t0);
+                in.clear();
+                drain(out, dst, stats);
+            }
+            cipher.doFinal(in.flip(), out);
+            drain(out, dst, stats);
+            stats.stop();
+        } finally {
+            BufferPool.release(in);
+            BufferPool.release(out);
+        }
+    }
+
+    private static void drain(ByteBuffer out, WritableByteChannel dst, Stats stats)
+            throws IOException {
+        out.flip();
+        stats.bytes_out += out.remaining();
+        while (out.hasRemaining()) {
+            dst.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Wraps out so that ciphertext is written in the given encoding.
+     */
+    static OutputStream encoder(String encoding, OutputStream out) {
+        out = new BufferedOutputStream(out, BUFFER_SIZE);
+        switch (encoding) {
+            case "hex":    return new HexOutputStream(out);
+            case "base64": return Base64.getEncoder().wrap(out);
+            default:       return out;
+        }
+    }
+
+    /**
+     * Wraps in so that ciphertext is read from the given encoding.
+     */
+    static InputStream decoder(String encoding, InputStream in) {
+        in = new BufferedInputStream(in, BUFFER_SIZE);
+        switch (encoding) {
+            case "hex":    return new HexInputStream(in);
+            case "base64": return Base64.getMimeDecoder().wrap(in); // skips newlines
+            default:       return in;
+        }
+    }
+
+    /**
+     * Writes each byte as two lowercase hex digits.
+     */
+    static class HexOutputStream extends FilterOutputStream {
+        private static final byte[] DIGITS = "0123456789abcdef".getBytes();
+        private final byte[] chunk = new byte[BUFFER_SIZE * 2];
+
+        HexOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(DIGITS[(b >> 4) & 0xf]);
+            out.write(DIGITS[b & 0xf]);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, BUFFER_SIZE);
+                for (int i = 0; i < n; i++) {
+                    chunk[i*2]     = DIGITS[(b[off+i] >> 4) & 0xf];
+                    chunk[(i*2)+1] = DIGITS[b[off+i] & 0xf];
+                }
+                out.write(chunk, 0, n*2);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * Reads pairs of hex digits as bytes, skipping whitespace.
+     */
+    static class HexInputStream extends FilterInputStream {
+        HexInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int hi = digit();
+            if (hi == -1) return -1;
+            int lo = digit();
+            if (lo == -1) throw new IOException("Odd number of hex digits");
+            return (hi << 4) | lo;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = 0;
+            while (n < len) {
+                int c = read();
+                if (c == -1) break;
+                b[off + n++] = (byte) c;
+                if (in.available() == 0) break; // don't block for a full buffer
+            }
+            return n == 0 ? -1 : n;
+        }
+
+        private int digit() throws IOException {
+            int c;
+            do {
+                c = in.read();
+            } while (c != -1 && Character.isWhitespace(c));
+            if (c == -1) return -1;
+            int d = Character.digit(c, 16);
+            if (d < 0) throw new IOException("Invalid hex digit '" + (char) c + "'");
+            return d;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && read() != -1) skipped++;
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return in.available() / 2;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Throughput and per-chunk latency figures printed by --stats.
+     */
+    static class Stats {
+        long bytes_in, bytes_out, chunks;
+        long min_ns = Long.MAX_VALUE, max_ns, total_ns;
+        long start_ns, elapsed_ns, startup_ms;
+
+        void start() {
+            startup_ms = System.currentTimeMillis()
+                - ManagementFactory.getRuntimeMXBean().getStartTime();
+            start_ns = System.nanoTime();
+        }
+
+        void chunk(long ns) {
+            chunks++;
+            total_ns += ns;
+            min_ns = Math.min(min_ns, ns);
+            max_ns = Math.max(max_ns, ns);
+        }
+
+        void stop() {
+            elapsed_ns = System.nanoTime() - start_ns;
+        }
+
+        void print() {
+            double seconds = elapsed_ns / 1e9;
+            System.err.println("-----Stats------------------------");
+            System.err.printf("     Startup: %d ms%n", startup_ms);
+            System.err.printf("    Bytes in: %d%n", bytes_in);
+            System.err.printf("   Bytes out: %d%n", bytes_out);
+            System.err.printf("     Elapsed: %.3f ms%n", elapsed_ns / 1e6);
+            System.err.printf("  Throughput: %.3f MB/s%n",
+                seconds > 0 ? bytes_in / seconds / 1e6 : 0.0);
+            if (chunks > 0) {
+                System.err.printf("     Latency: min %.1f us, avg %.1f us, max %.1f us (%d chunks)%n",
+                    min_ns / 1e3, total_ns / 1e3 / chunks, max_ns / 1e3, chunks);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This class measures, for each S-box engine, how much the time DES takes
+ * leaks about the data it encrypts and how fast the engine is, so the two can
+ * be weighed against each other.
+ * <p>
+ * Leakage is tested as in dudect (Reparaz, Balasch and Verbauwhede, "Dude, is
+ * my code constant time?", 2017). Every measurement encrypts either a fixed
+ * plaintext or a random one, chosen at random, under the same secret key.
+ * Welch's t-test then compares the two timing distributions, both in full and
+ * cropped at several percentiles to drop interrupts, GC pauses and other
+ * noise. A |t| above 4.5 is evidence that timing depends on the plaintext; a
+ * lower value means no leak was found with this many measurements, so use
+ * more measurements to look harder.
+ * <pre>
+ * javac TimingHarness.java && java TimingHarness [measurements]
+ * </pre>
+ */
+class TimingHarness {
+
+    static final double THRESHOLD = 4.5; // |t| above which timing leaks
+    static final double[] PERCENTILES = {0.5, 0.75, 0.9, 0.95, 0.99}; // crops
+    static final int WARMUP = 10000; // encryptions before measuring, for the JIT
+    static final int THROUGHPUT_BLOCKS = 20000;
+
+    static volatile int sink; // keeps the JIT from dropping unused encryptions
+
+    public static void main(String[] args) {
+        int measurements = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        int[] key = new int[64];
+        SecureRandom secure = new SecureRandom();
+        for (int i = 0; i < 64; i++) {
+            key[i] = secure.nextInt(2);
+        }
+        int[][] kn = Crypto.generatePerRoundKeys(key);
+        Random random = new Random(secure.nextLong());
+
+        System.out.println("-----Timing (dudect)--------------");
+        System.out.printf("%-14s %12s %9s  %-8s %14s %12s%n", "Engine",
+            "Measurements", "max |t|", "Leakage", "Median ns/blk", "Throughput");
+        for (Crypto.Engine engine : Crypto.Engine.values()) {
+            Result r = measure(engine, kn, measurements, random);
+            System.out.printf("%-14s %12d %9.2f  %-8s %14d %7.3f MB/s%n",
+                engine.name().toLowerCase().replace('_', '-'), measurements, r.max_t,
+                r.max_t > THRESHOLD ? "leaks" : "none", r.median_ns, r.mb_per_s);
+        }
+    }
+
+    /**
+     * Runs the fixed-vs-random t-test and the throughput test for one engine.
+     */
+    static Result measure(Crypto.Engine engine, int[][] kn, int measurements, Random random) {
+        int[] fixed = new int[64]; // all zero plaintext
+        int[] block = new int[64];
+        int[] out = new int[64];
+        int bits = 0; // first ciphertext bits, folded into sink
+
+        for (int i = 0; i < WARMUP; i++) {
+            randomBlock(block, random);
+            Crypto.encodeData((i & 1) == 0 ? fixed : block, out, kn, engine);
+            bits ^= out[0];
+        }
+
+        // Measure, preparing each input before the clock starts
+        long[] times = new long[measurements];
+        byte[] classes = new byte[measurements];
+        for (int i = 0; i < measurements; i++) {
+            classes[i] = (byte) random.nextInt(2);
+            int[] input = fixed;
+            if (classes[i] == 1) {
+                randomBlock(block, random);
+                input = block;
+            }
+            long t0 = System.nanoTime();
+            Crypto.encodeData(input, out, kn, engine);
+            times[i] = System.nanoTime() - t0;
+            bits ^= out[0];
+        }
+
+        // Test the full distribution and each cropped one
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long[] crops = new long[PERCENTILES.length];
+        for (int p = 0; p < crops.length; p++) {
+            crops[p] = sorted[(int) (PERCENTILES[p] * (measurements - 1))];
+        }
+        WelchTTest[] tests = new WelchTTest[crops.length + 1];
+        for (int t = 0; t < tests.length; t++) {
+            tests[t] = new WelchTTest();
+        }
+        for (int i = 0; i < measurements; i++) {
+            tests[0].push(times[i], classes[i]);
+            for (int p = 0; p < crops.length; p++) {
+                if (times[i] <= crops[p]) {
+                    tests[p+1].push(times[i], classes[i]);
+                }
+            }
+        }
+
+        Result r = new Result();
+        for (WelchTTest test : tests) {
+            r.max_t = Math.max(r.max_t, Math.abs(test.t()));
+        }
+        r.median_ns = sorted[measurements / 2];
+
+        // Throughput over back-to-back encryptions
+        long t0 = System.nanoTime();
+        for (int i = 0; i < THROUGHPUT_BLOCKS; i++) {
+            block[i & 63] ^= 1;
+            Crypto.encodeData(block, out, kn, engine);
+            bits ^= out[0];
+        }
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        r.mb_per_s = THROUGHPUT_BLOCKS * 8 / seconds / 1e6;
+
+        sink ^= bits;
+        return r;
+    }
+
+    private static void randomBlock(int[] block, Random random) {
+        long bits = random.nextLong();
+        for (int i = 0; i < 64; i++) {
+            block[i] = (int) (bits >>> i) & 1;
+        }
+    }
+
+    static class Result {
+        double max_t, mb_per_s;
+        long median_ns;
+    }
+
+    /**
+     * Welch's t-test over two classes of samples, with the mean and variance
+     * of each class kept online (Welford's method).
+     */
+    static class WelchTTest {
+        private final double[] mean = new double[2];
+        private final double[] m2 = new double[2]; // sum of squared deviations
+        private final long[] n = new long[2];
+
+        void push(double x, int cls) {
+            n[cls]++;
+            double delta = x - mean[cls];
+            mean[cls] += delta / n[cls];
+            m2[cls] += delta * (x - mean[cls]);
+        }
+
+        double t() {
+            if (n[0] < 2 || n[1] < 2) return 0;
+            double var0 = m2[0] / (n[0] - 1);
+            double var1 = m2[1] / (n[1] - 1);
+            double se = Math.sqrt(var0/n[0] + var1/n[1]);
+            return se == 0 ? 0 : (mean[0] - mean[1]) / se;
+        }
+    }
+}